@@ -11,6 +11,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 import javax.script.Bindings;
@@ -74,6 +75,8 @@ public class FraudService extends AbstractService
   private static EngineService _engineService;
   private static EciContentService _eciContentService;
   private static ScriptEngine _scriptEngine;
+  private static MemoryBudget _memoryBudget;
+  private static long _estimatedDocumentBytes;
 
   private ExecutionContext _executionContext;
   private Configuration _configuration;
@@ -152,6 +155,68 @@ public class FraudService extends AbstractService
         final ScriptEngineManager scriptEngineManager = new ScriptEngineManager();
         _scriptEngine = scriptEngineManager.getEngineByName(SCRIPT_ENGINE);
       }
+
+      if (_memoryBudget == null)
+      {
+        initMemoryBudget();
+      }
+    }
+  }
+
+  /**
+   * Parses the whole memory budget configuration before publishing it, so that a failed initialization is retried by the next one
+   */
+  private void initMemoryBudget() throws CheckedException
+  {
+    final long maxBytes = readMemoryBudgetBytes("memoryBudget.maxBytes", "0");
+    final long waitTimeout = readMemoryBudgetBytes("memoryBudget.waitTimeout", "0");
+    final long estimatedBytes = readMemoryBudgetBytes("memoryBudget.estimatedBytes", "1048576");
+    final MemoryBudget.Policy policy;
+    final MemoryBudget.OversizedPolicy oversizedPolicy;
+    try
+    {
+      policy = MemoryBudget.Policy.valueOf(readOneConfigurationValue(Arrays.asList("memoryBudget.policy"), "WAIT").trim().toUpperCase(Locale.ROOT));
+      oversizedPolicy = MemoryBudget.OversizedPolicy.valueOf(readOneConfigurationValue(Arrays.asList("memoryBudget.oversized"), "REJECT").trim().toUpperCase(Locale.ROOT));
+    }
+    catch (final IllegalArgumentException e)
+    {
+      throw new CheckedException("Invalid memory budget configuration", e);
+    }
+
+    final MemoryBudget memoryBudget = new MemoryBudget(maxBytes, policy, waitTimeout, oversizedPolicy);
+    // The estimate is reserved before loading a document, so it can never be more than the whole budget
+    _estimatedDocumentBytes = memoryBudget.isLimited() ? Math.min(estimatedBytes, maxBytes) : estimatedBytes;
+    _memoryBudget = memoryBudget;
+    _logger.info("Fraud service memory budget initialized: " + _memoryBudget + ", estimated document size [" + _estimatedDocumentBytes + "] bytes");
+  }
+
+  private long readMemoryBudgetBytes(final String key, final String defaultValue) throws CheckedException
+  {
+    final String value = readOneConfigurationValue(Arrays.asList(key), defaultValue).trim();
+    final long bytes;
+    try
+    {
+      bytes = Long.parseLong(value);
+    }
+    catch (final NumberFormatException e)
+    {
+      throw new CheckedException("Invalid memory budget configuration", e);
+    }
+    if (bytes < 0)
+    {
+      throw new CheckedException("Invalid memory budget configuration", new IllegalArgumentException("Negative value [" + value + "] for [" + key + "]"));
+    }
+    return bytes;
+  }
+
+  /**
+   * Process-wide budget of document bytes in flight, exposing current and peak reservations
+   */
+  public static MemoryBudget getMemoryBudget()
+  {
+    synchronized (_staticMonitor)
+    {
+      return _memoryBudget;
     }
   }
 
@@ -370,19 +435,71 @@ public class FraudService extends AbstractService
     return result;
   }
 
-  private FraudResult sendToSaaS(final String checkAlgorithm, final Document eciDocument) throws CheckedException, RemoteException
+  private CheckedException memoryBudgetException(final Document eciDocument, final Exception e)
+  {
+    if (e instanceof InterruptedException)
+    {
+      Thread.currentThread().interrupt();
+      return new CheckedException("Interrupted while waiting for memory budget", e);
+    }
+    return new CheckedException("Memory budget exceeded for document [" + eciDocument.getIdentifier().getId() + "]", e);
+  }
+
+  private ContentPart loadContentPart(final Document eciDocument) throws CheckedException, RemoteException
   {
     final List<ContentPart> contentParts = _eciContentService.getDocumentContentParts(_principal, eciDocument.getIdentifier());
-    final ContentPart contentPart = contentParts.get(0); //$$$$ for now, only compatible with mono-doc
+    return contentParts.get(0); //$$$$ for now, only compatible with mono-doc
+  }
 
-    if (_logger.isDebugEnabled())
+  private FraudResult sendToSaaS(final String checkAlgorithm, final Document eciDocument) throws CheckedException, RemoteException
+  {
+    // The ECI client gives the content size only once loaded: reserve an estimate first,
+    // then wait for the missing bytes while keeping the loaded content, so that it is fetched only once
+    long reserved = _estimatedDocumentBytes;
+    try
+    {
+      _memoryBudget.reserve(reserved);
+    }
+    catch (final MemoryBudgetExceededException e)
     {
-      _logger.debug("Sending document [" + eciDocument.getName() + "] with id [" + eciDocument.getIdentifier().getId() + "] " +
-                    "with type [" + eciDocument.getObjectDefinitionIdentifier().getId() + "] of size [" + contentPart.getContent().length + "] bytes " +
-                    "to Fraud Detection SaaS with algorithm [" + checkAlgorithm + "]");
+      throw memoryBudgetException(eciDocument, e);
     }
+    catch (final InterruptedException e)
+    {
+      throw memoryBudgetException(eciDocument, e);
+    }
+
+    try
+    {
+      final ContentPart contentPart = loadContentPart(eciDocument);
+      final long size = contentPart.getContent().length;
+      try
+      {
+        _memoryBudget.resize(reserved, size);
+      }
+      catch (final MemoryBudgetExceededException e)
+      {
+        throw memoryBudgetException(eciDocument, e);
+      }
+      catch (final InterruptedException e)
+      {
+        throw memoryBudgetException(eciDocument, e);
+      }
+      reserved = size;
 
-    return sendToSaaS(checkAlgorithm, contentPart.getName(), contentPart.getContent());
+      if (_logger.isDebugEnabled())
+      {
+        _logger.debug("Sending document [" + eciDocument.getName() + "] with id [" + eciDocument.getIdentifier().getId() + "] " +
+                      "with type [" + eciDocument.getObjectDefinitionIdentifier().getId() + "] of size [" + size + "] bytes " +
+                      "to Fraud Detection SaaS with algorithm [" + checkAlgorithm + "], memory budget " + _memoryBudget);
+      }
+
+      return sendToSaaS(checkAlgorithm, contentPart.getName(), contentPart.getContent());
+    }
+    finally
+    {
+      _memoryBudget.release(reserved);
+    }
   }
 
   private FraudResult sendToSaaS(final String checkAlgorithm, final Item eciItem) throws CheckedException, RemoteException
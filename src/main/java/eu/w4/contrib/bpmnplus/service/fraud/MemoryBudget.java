@@ -0,0 +1,358 @@
+package eu.w4.contrib.bpmnplus.service.fraud;
+
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+import eu.w4.common.log.Logger;
+import eu.w4.common.log.LoggerFactory;
+
+/**
+ * Process-wide byte budget limiting the amount of document content in flight
+ * towards the Fraud Detection SaaS.
+ * Waiting reservations are admitted in arrival order, so that neither an
+ * oversized nor a large reservation can be starved by a stream of small ones.
+ * Existing reservations waiting to grow go before new ones, and when every
+ * holder of a reservation is waiting to grow, the first one is admitted over
+ * the budget rather than deadlocking.
+ */
+public class MemoryBudget
+{
+  /**
+   * Behaviour when the budget is exhausted
+   */
+  public enum Policy
+  {
+    WAIT,
+    REJECT
+  }
+
+  /**
+   * Behaviour when a single document is larger than the whole budget
+   */
+  public enum OversizedPolicy
+  {
+    REJECT,
+    EXCLUSIVE
+  }
+
+  private static class Waiter
+  {
+    private final boolean _holding;
+
+    Waiter(final boolean holding)
+    {
+      _holding = holding;
+    }
+  }
+
+  private static Logger _logger = LoggerFactory.getLogger(MemoryBudget.class.getName());
+
+  private final Object _monitor = new Object();
+
+  private final long _maxBytes;
+  private final Policy _policy;
+  private final long _waitTimeout;
+  private final OversizedPolicy _oversizedPolicy;
+
+  private final LinkedList<Waiter> _waiters = new LinkedList<Waiter>();
+
+  private long _reservedBytes;
+  private long _peakReservedBytes;
+  private long _rejectedCount;
+  private int _holders;
+
+  /**
+   * @param maxBytes maximum number of bytes reserved at once, 0 for unlimited
+   * @param policy behaviour when the budget is exhausted
+   * @param waitTimeout maximum time in milliseconds to wait with {@link Policy#WAIT}, 0 to wait forever
+   * @param oversizedPolicy behaviour when a single document exceeds <code>maxBytes</code>
+   */
+  public MemoryBudget(final long maxBytes, final Policy policy, final long waitTimeout, final OversizedPolicy oversizedPolicy)
+  {
+    _maxBytes = maxBytes;
+    _policy = policy;
+    _waitTimeout = waitTimeout;
+    _oversizedPolicy = oversizedPolicy;
+  }
+
+  public boolean isLimited()
+  {
+    return _maxBytes > 0;
+  }
+
+  public long getMaxBytes()
+  {
+    return _maxBytes;
+  }
+
+  public Policy getPolicy()
+  {
+    return _policy;
+  }
+
+  public long getWaitTimeout()
+  {
+    return _waitTimeout;
+  }
+
+  public OversizedPolicy getOversizedPolicy()
+  {
+    return _oversizedPolicy;
+  }
+
+  public long getReservedBytes()
+  {
+    synchronized (_monitor)
+    {
+      return _reservedBytes;
+    }
+  }
+
+  public long getPeakReservedBytes()
+  {
+    synchronized (_monitor)
+    {
+      return _peakReservedBytes;
+    }
+  }
+
+  public long getRejectedCount()
+  {
+    synchronized (_monitor)
+    {
+      return _rejectedCount;
+    }
+  }
+
+  /**
+   * Reserve <code>bytes</code> from the budget, waiting or failing according to the policy.
+   * Every successful call must be matched by a call to {@link #release(long)} with the final amount reserved.
+   */
+  public void reserve(final long bytes) throws MemoryBudgetExceededException, InterruptedException
+  {
+    acquire(0, bytes, false);
+  }
+
+  /**
+   * Change an existing reservation of <code>reservedBytes</code> to <code>bytes</code>.
+   * Shrinking never waits; growing waits or fails according to the policy, in which case the reservation is left unchanged.
+   */
+  public void resize(final long reservedBytes, final long bytes) throws MemoryBudgetExceededException, InterruptedException
+  {
+    acquire(reservedBytes, bytes, true);
+  }
+
+  public void release(final long bytes)
+  {
+    checkBytes(bytes);
+    String error = null;
+    synchronized (_monitor)
+    {
+      if (bytes > _reservedBytes)
+      {
+        error = "Releasing [" + bytes + "] bytes while only [" + _reservedBytes + "] bytes are reserved, memory budget reset to zero";
+        _reservedBytes = 0;
+      }
+      else
+      {
+        _reservedBytes -= bytes;
+      }
+      if (_holders > 0)
+      {
+        _holders--;
+      }
+      _monitor.notifyAll();
+    }
+    if (error != null)
+    {
+      _logger.error(error);
+    }
+  }
+
+  private void acquire(final long reservedBytes, final long bytes, final boolean holding) throws MemoryBudgetExceededException, InterruptedException
+  {
+    checkBytes(reservedBytes);
+    checkBytes(bytes);
+    final String peakMessage;
+    try
+    {
+      synchronized (_monitor)
+      {
+        peakMessage = admit(reservedBytes, bytes, holding);
+      }
+    }
+    catch (final MemoryBudgetExceededException e)
+    {
+      _logger.info("Fraud service memory budget rejected a document: " + e.getMessage());
+      throw e;
+    }
+    if (peakMessage != null)
+    {
+      if (isLimited())
+      {
+        _logger.info(peakMessage);
+      }
+      else
+      {
+        _logger.debug(peakMessage);
+      }
+    }
+  }
+
+  /**
+   * Must be called holding the monitor
+   * @return a message to log when the peak has grown, <code>null</code> otherwise
+   */
+  private String admit(final long reservedBytes, final long bytes, final boolean holding) throws MemoryBudgetExceededException, InterruptedException
+  {
+    if (!isLimited() || bytes <= reservedBytes)
+    {
+      return grant(reservedBytes, bytes, holding);
+    }
+
+    final boolean oversized = bytes > _maxBytes;
+    if (oversized && _oversizedPolicy == OversizedPolicy.REJECT)
+    {
+      throw reject("Document of [" + bytes + "] bytes exceeds the whole memory budget of [" + _maxBytes + "] bytes");
+    }
+
+    if (_waiters.isEmpty() && fits(reservedBytes, bytes, oversized))
+    {
+      return grant(reservedBytes, bytes, holding);
+    }
+
+    if (_policy == Policy.REJECT)
+    {
+      throw reject("Cannot reserve [" + (bytes - reservedBytes) + "] more bytes, [" + _reservedBytes + "] of [" + _maxBytes + "] bytes already reserved");
+    }
+
+    final Waiter waiter = new Waiter(holding);
+    enqueue(waiter);
+    // A new holding waiter may be the last one needed to unblock the first one
+    _monitor.notifyAll();
+    try
+    {
+      final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(_waitTimeout);
+      while (!admissible(waiter, reservedBytes, bytes, oversized))
+      {
+        if (_waitTimeout <= 0)
+        {
+          _monitor.wait();
+        }
+        else
+        {
+          final long remaining = deadline - System.nanoTime();
+          if (remaining <= 0)
+          {
+            throw reject("Timed out after [" + _waitTimeout + "] ms waiting to reserve [" + (bytes - reservedBytes) + "] more bytes, "
+                       + "[" + _reservedBytes + "] of [" + _maxBytes + "] bytes still reserved");
+          }
+          TimeUnit.NANOSECONDS.timedWait(_monitor, remaining);
+        }
+      }
+      return grant(reservedBytes, bytes, holding);
+    }
+    finally
+    {
+      _waiters.remove(waiter);
+      _monitor.notifyAll();
+    }
+  }
+
+  /**
+   * Reservations waiting to grow go after each other, but before new reservations
+   */
+  private void enqueue(final Waiter waiter)
+  {
+    if (!waiter._holding)
+    {
+      _waiters.addLast(waiter);
+      return;
+    }
+    int index = 0;
+    while (index < _waiters.size() && _waiters.get(index)._holding)
+    {
+      index++;
+    }
+    _waiters.add(index, waiter);
+  }
+
+  private boolean admissible(final Waiter waiter, final long reservedBytes, final long bytes, final boolean oversized)
+  {
+    if (_waiters.getFirst() != waiter)
+    {
+      return false;
+    }
+    return fits(reservedBytes, bytes, oversized) || (waiter._holding && countHoldingWaiters() >= _holders);
+  }
+
+  private int countHoldingWaiters()
+  {
+    int count = 0;
+    for (final Waiter waiter : _waiters)
+    {
+      if (waiter._holding)
+      {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * An oversized document is only admitted alone, once everything else has been released
+   */
+  private boolean fits(final long reservedBytes, final long bytes, final boolean oversized)
+  {
+    if (oversized)
+    {
+      return _reservedBytes == reservedBytes;
+    }
+    return _reservedBytes - reservedBytes + bytes <= _maxBytes;
+  }
+
+  private String grant(final long reservedBytes, final long bytes, final boolean holding)
+  {
+    if (!holding)
+    {
+      _holders++;
+    }
+    _reservedBytes += bytes - reservedBytes;
+    _monitor.notifyAll();
+    if (_reservedBytes > _peakReservedBytes)
+    {
+      _peakReservedBytes = _reservedBytes;
+      return "New peak of fraud service memory budget: " + describe();
+    }
+    return null;
+  }
+
+  private MemoryBudgetExceededException reject(final String message)
+  {
+    _rejectedCount++;
+    return new MemoryBudgetExceededException(message + ", " + describe());
+  }
+
+  private static void checkBytes(final long bytes)
+  {
+    if (bytes < 0)
+    {
+      throw new IllegalArgumentException("Negative amount of bytes [" + bytes + "]");
+    }
+  }
+
+  private String describe()
+  {
+    return "reserved [" + _reservedBytes + "] bytes, peak [" + _peakReservedBytes + "] bytes, "
+         + "budget [" + (isLimited() ? _maxBytes + "] bytes" : "unlimited]") + ", rejected [" + _rejectedCount + "]";
+  }
+
+  @Override
+  public String toString()
+  {
+    synchronized (_monitor)
+    {
+      return describe();
+    }
+  }
+}
@@ -0,0 +1,11 @@
+package eu.w4.contrib.bpmnplus.service.fraud;
+
+public class MemoryBudgetExceededException extends Exception
+{
+  private static final long serialVersionUID = 1L;
+
+  public MemoryBudgetExceededException(final String message)
+  {
+    super(message);
+  }
+}
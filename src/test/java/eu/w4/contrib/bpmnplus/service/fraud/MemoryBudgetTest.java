@@ -0,0 +1,356 @@
+package eu.w4.contrib.bpmnplus.service.fraud;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class MemoryBudgetTest
+{
+  private static final long TIMEOUT = 5000;
+
+  /**
+   * Reserves or resizes an existing reservation in a separate thread, remembering the outcome
+   */
+  private static class Reserver extends Thread
+  {
+    private final MemoryBudget _budget;
+    private final long _reservedBytes;
+    private final long _bytes;
+    private volatile boolean _reserved;
+    private volatile Exception _exception;
+
+    Reserver(final MemoryBudget budget, final long bytes)
+    {
+      this(budget, -1, bytes);
+    }
+
+    Reserver(final MemoryBudget budget, final long reservedBytes, final long bytes)
+    {
+      _budget = budget;
+      _reservedBytes = reservedBytes;
+      _bytes = bytes;
+      setDaemon(true);
+    }
+
+    @Override
+    public void run()
+    {
+      try
+      {
+        if (_reservedBytes < 0)
+        {
+          _budget.reserve(_bytes);
+        }
+        else
+        {
+          _budget.resize(_reservedBytes, _bytes);
+        }
+        _reserved = true;
+      }
+      catch (final Exception e)
+      {
+        _exception = e;
+      }
+    }
+  }
+
+  private static void awaitWaiting(final Thread thread) throws InterruptedException
+  {
+    final long deadline = System.currentTimeMillis() + TIMEOUT;
+    while (thread.getState() != Thread.State.WAITING && thread.getState() != Thread.State.TIMED_WAITING)
+    {
+      if (System.currentTimeMillis() > deadline)
+      {
+        fail("Thread never started waiting");
+      }
+      Thread.sleep(5);
+    }
+  }
+
+  @Test
+  public void unlimitedAccountsWithoutBlocking() throws Exception
+  {
+    final MemoryBudget budget = new MemoryBudget(0, MemoryBudget.Policy.REJECT, 0, MemoryBudget.OversizedPolicy.REJECT);
+    budget.reserve(1000);
+    budget.reserve(2000);
+    assertFalse(budget.isLimited());
+    assertEquals(3000, budget.getReservedBytes());
+    assertEquals(3000, budget.getPeakReservedBytes());
+    budget.release(3000);
+    assertEquals(0, budget.getReservedBytes());
+  }
+
+  @Test
+  public void rejectWhenFull() throws Exception
+  {
+    final MemoryBudget budget = new MemoryBudget(100, MemoryBudget.Policy.REJECT, 0, MemoryBudget.OversizedPolicy.REJECT);
+    budget.reserve(60);
+    try
+    {
+      budget.reserve(50);
+      fail("Reservation should have been rejected");
+    }
+    catch (final MemoryBudgetExceededException e)
+    {
+      // expected
+    }
+    assertEquals(60, budget.getReservedBytes());
+    assertEquals(1, budget.getRejectedCount());
+    budget.reserve(40);
+    assertEquals(100, budget.getReservedBytes());
+  }
+
+  @Test
+  public void waitSucceedsAfterRelease() throws Exception
+  {
+    final MemoryBudget budget = new MemoryBudget(100, MemoryBudget.Policy.WAIT, 0, MemoryBudget.OversizedPolicy.REJECT);
+    budget.reserve(80);
+    final Reserver reserver = new Reserver(budget, 50);
+    reserver.start();
+    awaitWaiting(reserver);
+    assertFalse(reserver._reserved);
+
+    budget.release(80);
+    reserver.join(TIMEOUT);
+    assertTrue(reserver._reserved);
+    assertEquals(50, budget.getReservedBytes());
+  }
+
+  @Test
+  public void waitTimesOut() throws Exception
+  {
+    final MemoryBudget budget = new MemoryBudget(100, MemoryBudget.Policy.WAIT, 50, MemoryBudget.OversizedPolicy.REJECT);
+    budget.reserve(80);
+    final long start = System.nanoTime();
+    try
+    {
+      budget.reserve(50);
+      fail("Reservation should have timed out");
+    }
+    catch (final MemoryBudgetExceededException e)
+    {
+      // expected
+    }
+    assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 50);
+    assertEquals(1, budget.getRejectedCount());
+    assertEquals(80, budget.getReservedBytes());
+
+    // the timed out waiter must not block later reservations
+    budget.reserve(20);
+    assertEquals(100, budget.getReservedBytes());
+  }
+
+  @Test
+  public void oversizedRejected() throws Exception
+  {
+    final MemoryBudget budget = new MemoryBudget(100, MemoryBudget.Policy.WAIT, 0, MemoryBudget.OversizedPolicy.REJECT);
+    try
+    {
+      budget.reserve(150);
+      fail("Oversized reservation should have been rejected");
+    }
+    catch (final MemoryBudgetExceededException e)
+    {
+      // expected
+    }
+    assertEquals(0, budget.getReservedBytes());
+    assertEquals(1, budget.getRejectedCount());
+  }
+
+  @Test
+  public void oversizedExclusive() throws Exception
+  {
+    final MemoryBudget budget = new MemoryBudget(100, MemoryBudget.Policy.WAIT, 0, MemoryBudget.OversizedPolicy.EXCLUSIVE);
+    budget.reserve(150);
+    assertEquals(150, budget.getReservedBytes());
+    budget.release(150);
+
+    budget.reserve(10);
+    final Reserver reserver = new Reserver(budget, 150);
+    reserver.start();
+    awaitWaiting(reserver);
+    assertFalse(reserver._reserved);
+
+    budget.release(10);
+    reserver.join(TIMEOUT);
+    assertTrue(reserver._reserved);
+    assertEquals(150, budget.getReservedBytes());
+  }
+
+  @Test
+  public void peakSurvivesReleases() throws Exception
+  {
+    final MemoryBudget budget = new MemoryBudget(100, MemoryBudget.Policy.REJECT, 0, MemoryBudget.OversizedPolicy.REJECT);
+    budget.reserve(30);
+    budget.reserve(40);
+    budget.release(30);
+    budget.reserve(10);
+    budget.release(40);
+    budget.release(10);
+    assertEquals(0, budget.getReservedBytes());
+    assertEquals(70, budget.getPeakReservedBytes());
+  }
+
+  @Test
+  public void oversizedNotStarvedBySmallReservations() throws Exception
+  {
+    final MemoryBudget budget = new MemoryBudget(100, MemoryBudget.Policy.WAIT, 0, MemoryBudget.OversizedPolicy.EXCLUSIVE);
+    budget.reserve(10);
+    final Reserver oversized = new Reserver(budget, 150);
+    oversized.start();
+    awaitWaiting(oversized);
+
+    // a small reservation arriving later must queue behind the oversized one
+    final Reserver small = new Reserver(budget, 10);
+    small.start();
+    awaitWaiting(small);
+    assertFalse(small._reserved);
+
+    budget.release(10);
+    oversized.join(TIMEOUT);
+    assertTrue(oversized._reserved);
+    assertFalse(small._reserved);
+
+    budget.release(150);
+    small.join(TIMEOUT);
+    assertTrue(small._reserved);
+    assertEquals(10, budget.getReservedBytes());
+  }
+
+  @Test
+  public void resizeShrinksAndGrowsWithinBudget() throws Exception
+  {
+    final MemoryBudget budget = new MemoryBudget(100, MemoryBudget.Policy.REJECT, 0, MemoryBudget.OversizedPolicy.REJECT);
+    budget.reserve(50);
+    budget.resize(50, 20);
+    assertEquals(20, budget.getReservedBytes());
+    budget.resize(20, 100);
+    assertEquals(100, budget.getReservedBytes());
+    try
+    {
+      budget.resize(100, 150);
+      fail("Oversized resize should have been rejected");
+    }
+    catch (final MemoryBudgetExceededException e)
+    {
+      // expected
+    }
+    assertEquals(100, budget.getReservedBytes());
+    budget.release(100);
+    assertEquals(0, budget.getReservedBytes());
+  }
+
+  @Test
+  public void resizeWaitsForMissingBytes() throws Exception
+  {
+    final MemoryBudget budget = new MemoryBudget(100, MemoryBudget.Policy.WAIT, 0, MemoryBudget.OversizedPolicy.REJECT);
+    budget.reserve(50);
+    budget.reserve(30);
+    final Reserver resizer = new Reserver(budget, 30, 70);
+    resizer.start();
+    awaitWaiting(resizer);
+    assertFalse(resizer._reserved);
+    assertEquals(80, budget.getReservedBytes());
+
+    budget.release(50);
+    resizer.join(TIMEOUT);
+    assertTrue(resizer._reserved);
+    assertEquals(70, budget.getReservedBytes());
+  }
+
+  @Test
+  public void resizeTimesOutLeavingReservationUnchanged() throws Exception
+  {
+    final MemoryBudget budget = new MemoryBudget(100, MemoryBudget.Policy.WAIT, 50, MemoryBudget.OversizedPolicy.REJECT);
+    budget.reserve(50);
+    budget.reserve(30);
+    try
+    {
+      budget.resize(30, 70);
+      fail("Resize should have timed out");
+    }
+    catch (final MemoryBudgetExceededException e)
+    {
+      // expected
+    }
+    assertEquals(80, budget.getReservedBytes());
+    assertEquals(1, budget.getRejectedCount());
+  }
+
+  @Test
+  public void resizeGoesBeforeNewReservations() throws Exception
+  {
+    final MemoryBudget budget = new MemoryBudget(100, MemoryBudget.Policy.WAIT, 0, MemoryBudget.OversizedPolicy.REJECT);
+    budget.reserve(60);
+    budget.reserve(20);
+    final Reserver newcomer = new Reserver(budget, 30);
+    newcomer.start();
+    awaitWaiting(newcomer);
+
+    final Reserver resizer = new Reserver(budget, 20, 50);
+    resizer.start();
+    awaitWaiting(resizer);
+
+    budget.release(60);
+    resizer.join(TIMEOUT);
+    assertTrue(resizer._reserved);
+    newcomer.join(TIMEOUT);
+    assertTrue(newcomer._reserved);
+    assertEquals(80, budget.getReservedBytes());
+  }
+
+  @Test
+  public void resizeDoesNotDeadlockWhenAllHoldersGrow() throws Exception
+  {
+    final MemoryBudget budget = new MemoryBudget(10, MemoryBudget.Policy.WAIT, 0, MemoryBudget.OversizedPolicy.REJECT);
+    budget.reserve(4);
+    budget.reserve(4);
+    final Reserver first = new Reserver(budget, 4, 9);
+    first.start();
+    awaitWaiting(first);
+    assertFalse(first._reserved);
+
+    final Reserver second = new Reserver(budget, 4, 9);
+    second.start();
+    first.join(TIMEOUT);
+    assertTrue(first._reserved);
+    assertEquals(13, budget.getReservedBytes());
+    awaitWaiting(second);
+    assertFalse(second._reserved);
+
+    budget.release(9);
+    second.join(TIMEOUT);
+    assertTrue(second._reserved);
+    assertEquals(9, budget.getReservedBytes());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void negativeReservationRejected() throws Exception
+  {
+    new MemoryBudget(100, MemoryBudget.Policy.REJECT, 0, MemoryBudget.OversizedPolicy.REJECT).reserve(-1);
+  }
+
+  @Test
+  public void releaseNeverGoesBelowZero() throws Exception
+  {
+    final MemoryBudget budget = new MemoryBudget(100, MemoryBudget.Policy.REJECT, 0, MemoryBudget.OversizedPolicy.REJECT);
+    budget.reserve(30);
+    budget.release(50);
+    assertEquals(0, budget.getReservedBytes());
+    budget.reserve(100);
+    try
+    {
+      budget.reserve(1);
+      fail("Released bytes must not have increased the budget");
+    }
+    catch (final MemoryBudgetExceededException e)
+    {
+      // expected
+    }
+  }
+}